@@ -1,32 +1,180 @@
 package edu.iis.mto.testreactor.exc3;
 
+import java.time.Clock;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-public class AtmMachine {
+public class AtmMachine implements AutoCloseable {
 
     private final CardProviderService cardService;
     private final BankService bankService;
     private final MoneyDepot moneyDepot;
+    private final CompensationQueue compensations;
+    private final Clock clock;
+    private final Duration sessionIdleTimeout;
+    private final CashAvailabilityIndex cashAvailability;
+    private final ScheduledExecutorService providedSessionSweeper;
+    private final Duration sessionSweepInterval;
+    private final Set<AtmSession> openSessions = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService ownedSessionSweeper;
+    private ScheduledFuture<?> sessionSweep;
+    private boolean sessionSweepStarted;
+    private boolean closed;
 
     public AtmMachine(CardProviderService cardService, BankService bankService, MoneyDepot moneyDepot) {
-        this.cardService = Objects.requireNonNull(cardService, "cardService==null");
-        this.bankService = Objects.requireNonNull(bankService, "bankService==null");
-        this.moneyDepot = Objects.requireNonNull(moneyDepot, "moneyDepot==null");
+        this(builder().withCardService(cardService)
+                      .withBankService(bankService)
+                      .withMoneyDepot(moneyDepot));
+    }
+
+    private AtmMachine(Builder builder) {
+        this.cardService = Objects.requireNonNull(builder.cardService, "cardService==null");
+        this.bankService = Objects.requireNonNull(builder.bankService, "bankService==null");
+        this.moneyDepot = Objects.requireNonNull(builder.moneyDepot, "moneyDepot==null");
+        this.compensations = builder.compensations;
+        this.clock = Objects.requireNonNull(builder.clock, "clock==null");
+        this.sessionIdleTimeout = Objects.requireNonNull(builder.sessionIdleTimeout, "sessionIdleTimeout==null");
+        this.cashAvailability = builder.cashAvailability;
+        this.providedSessionSweeper = builder.sessionSweeper;
+        this.sessionSweepInterval = Objects.requireNonNull(builder.sessionSweepInterval, "sessionSweepInterval==null");
     }
 
     public Payment withdraw(Money amount, Card card) {
+        List<Banknote> banknotes = reserveBanknotes(amount);
+        AuthenticationToken authCode;
+        try {
+            authCode = autorize(card);
+            awaitCompensations(authCode);
+            bankService.startTransaction(authCode);
+        } catch (RuntimeException e) {
+            restoreBanknotes(banknotes);
+            throw e;
+        }
+        return performTransaction(amount, banknotes, authCode);
+    }
+
+    /**
+     * The first opened session starts a periodic sweep closing idle sessions. It runs on the session sweeper given to
+     * the builder or, without one, on a daemon thread owned by the machine and shut down by {@link #close()}.
+     *
+     * @throws IllegalStateException when the machine has been closed
+     */
+    public AtmSession openSession(Card card) {
+        startSessionSweep();
+        AtmSession session = new AtmSession(this, bankService, autorize(card), clock, sessionIdleTimeout);
+        openSessions.add(session);
+        return session;
+    }
+
+    /**
+     * Closes, and so commits, every session that has been idle for longer than the session idle timeout. A session
+     * whose commit fails stays open and is retried by the next sweep.
+     *
+     * @return number of closed sessions
+     */
+    public int closeIdleSessions() {
+        int closed = 0;
+        for (AtmSession session : openSessions) {
+            try {
+                if (session.closeIfIdle(clock.instant())) {
+                    closed++;
+                }
+            } catch (RuntimeException e) {
+                // the session stays open and is closed by one of the next sweeps
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Stops the idle session sweep and closes all open sessions. A failed commit of a session is rethrown once
+     * the remaining sessions have been closed. No session can be opened afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (sessionSweep != null) {
+                sessionSweep.cancel(false);
+            }
+            if (ownedSessionSweeper != null) {
+                ownedSessionSweeper.shutdown();
+            }
+        }
+        RuntimeException failure = null;
+        for (AtmSession session : openSessions) {
+            try {
+                session.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private synchronized void startSessionSweep() {
+        if (closed) {
+            throw new IllegalStateException("atm machine is closed");
+        }
+        if (sessionSweepStarted) {
+            return;
+        }
+        sessionSweepStarted = true;
+        ScheduledExecutorService sweeper = providedSessionSweeper;
+        if (sweeper == null) {
+            ownedSessionSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "atm-session-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper = ownedSessionSweeper;
+        }
+        long interval = sessionSweepInterval.toMillis();
+        sessionSweep = sweeper.scheduleAtFixedRate(this::closeIdleSessions, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void sessionClosed(AtmSession session) {
+        openSessions.remove(session);
+    }
+
+    /**
+     * Validates the amount and picks the banknotes paying it. With a cash availability index they are reserved in it
+     * and have to be restored when the withdrawal fails before they are paid out.
+     */
+    List<Banknote> reserveBanknotes(Money amount) {
         validateAmount(amount);
-        AuthenticationToken authCode = autorize(card);
-        return performTransaction(amount, authCode);
+        if (cashAvailability == null) {
+            return preparePayment(amount);
+        }
+        return cashAvailability.reserve(amount)
+                               .orElseThrow(WrongMoneyAmountException::new);
+    }
+
+    void restoreBanknotes(List<Banknote> banknotes) {
+        if (cashAvailability != null) {
+            cashAvailability.restore(banknotes);
+        }
     }
 
     private void validateAmount(Money amount) {
-        if (amount.getAmount() <= 0 || cannotBePayedWithBanknotes(amount)) {
+        if (amount.getAmount() <= 0 || cannotBePayedWithBanknotes(amount) || cannotBePayedFromStock(amount)) {
             throw new WrongMoneyAmountException();
         }
     }
@@ -37,6 +185,10 @@ public class AtmMachine {
                        .noneMatch(banknote -> amount.getAmount() % banknote.getValue() == 0);
     }
 
+    private boolean cannotBePayedFromStock(Money amount) {
+        return cashAvailability != null && !cashAvailability.canDispense(amount);
+    }
+
     private AuthenticationToken autorize(Card card) {
         Optional<AuthenticationToken> authCode = cardService.authorize(card);
         if (authCode.isPresent()) {
@@ -45,27 +197,54 @@ public class AtmMachine {
         throw new CardAuthorizationException();
     }
 
-    private Payment performTransaction(Money amount, AuthenticationToken authCode) {
-        bankService.startTransaction(authCode);
+    private Payment performTransaction(Money amount, List<Banknote> banknotes, AuthenticationToken authCode) {
+        Payment payment = null;
         try {
             chargeAccount(amount, authCode);
-            Payment payment = releasePayment(amount);
+            payment = releasePayment(banknotes);
             bankService.commit(authCode);
             return payment;
         } catch (Exception e) {
-            bankService.abort(authCode);
+            if (payment == null) {
+                restoreBanknotes(banknotes);
+            }
+            abortTransaction(authCode, e);
             throw e;
         }
     }
 
-    private void chargeAccount(Money amount, AuthenticationToken authCode) {
+    void awaitCompensations(AuthenticationToken authCode) {
+        if (compensations != null) {
+            compensations.compensateNow(authCode);
+        }
+    }
+
+    /**
+     * Hands the abort to the compensation queue or, without one, aborts right away. A failure of an immediate abort is
+     * added as suppressed to the given failure, or thrown when there is none.
+     */
+    void abortTransaction(AuthenticationToken authCode, Exception failure) {
+        if (compensations != null) {
+            compensations.abort(authCode);
+            return;
+        }
+        try {
+            bankService.abort(authCode);
+        } catch (RuntimeException e) {
+            if (failure == null) {
+                throw e;
+            }
+            failure.addSuppressed(e);
+        }
+    }
+
+    void chargeAccount(Money amount, AuthenticationToken authCode) {
         if (!bankService.charge(authCode, amount)) {
             throw new InsufficientFundsException();
         }
     }
 
-    private Payment releasePayment(Money money) {
-        List<Banknote> banknotes = preparePayment(money);
+    Payment releasePayment(List<Banknote> banknotes) {
         if (!moneyDepot.releaseBanknotes(banknotes)) {
             throw new MoneyDepotException();
         }
@@ -88,4 +267,80 @@ public class AtmMachine {
         return paymentBanknotes;
     }
 
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+
+        private CardProviderService cardService;
+        private BankService bankService;
+        private MoneyDepot moneyDepot;
+        private CompensationQueue compensations;
+        private Clock clock = Clock.systemUTC();
+        private Duration sessionIdleTimeout = Duration.ofMinutes(2);
+        private CashAvailabilityIndex cashAvailability;
+        private ScheduledExecutorService sessionSweeper;
+        private Duration sessionSweepInterval = Duration.ofSeconds(10);
+
+        private Builder() {}
+
+        public Builder withCardService(CardProviderService cardService) {
+            this.cardService = cardService;
+            return this;
+        }
+
+        public Builder withBankService(BankService bankService) {
+            this.bankService = bankService;
+            return this;
+        }
+
+        public Builder withMoneyDepot(MoneyDepot moneyDepot) {
+            this.moneyDepot = moneyDepot;
+            return this;
+        }
+
+        /**
+         * Aborts of failed withdrawals go through the given queue. Without it, aborts are performed synchronously
+         * before the failure is rethrown, with a failed abort attached to it as suppressed.
+         */
+        public Builder withCompensationQueue(CompensationQueue compensations) {
+            this.compensations = compensations;
+            return this;
+        }
+
+        public Builder withClock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public Builder withSessionIdleTimeout(Duration sessionIdleTimeout) {
+            this.sessionIdleTimeout = sessionIdleTimeout;
+            return this;
+        }
+
+        public Builder withSessionSweeper(ScheduledExecutorService sessionSweeper) {
+            this.sessionSweeper = sessionSweeper;
+            return this;
+        }
+
+        public Builder withSessionSweepInterval(Duration sessionSweepInterval) {
+            this.sessionSweepInterval = sessionSweepInterval;
+            return this;
+        }
+
+        /**
+         * Amounts that cannot be paid from the stock tracked by the given index are rejected before the card is
+         * authorized. Payments are composed from that stock and reserved in the index up front.
+         */
+        public Builder withCashAvailabilityIndex(CashAvailabilityIndex cashAvailability) {
+            this.cashAvailability = cashAvailability;
+            return this;
+        }
+
+        public AtmMachine build() {
+            return new AtmMachine(this);
+        }
+    }
+
 }
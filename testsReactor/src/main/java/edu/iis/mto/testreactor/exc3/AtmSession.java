@@ -0,0 +1,147 @@
+package edu.iis.mto.testreactor.exc3;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Several withdrawals made with one inserted card.
+ * <p>
+ * The card is authorized once, when the session is opened. A bank transaction is started for a withdrawal and kept
+ * open while the bank refuses charges, so a retry with a lower amount reuses it. Once banknotes are paid out the
+ * transaction is committed before anything else is charged, because the bank cannot abort only a part of a
+ * transaction. A commit that fails is retried before the next withdrawal and when the session is closed.
+ * <p>
+ * A session left idle for longer than its timeout is closed on the next use or by
+ * {@link AtmMachine#closeIdleSessions()}.
+ */
+public class AtmSession implements AutoCloseable {
+
+    private final AtmMachine atmMachine;
+    private final BankService bankService;
+    private final AuthenticationToken authCode;
+    private final Clock clock;
+    private final Duration idleTimeout;
+
+    private boolean transactionStarted;
+    private boolean commitPending;
+    private boolean closed;
+    private boolean expired;
+    private Instant lastActivity;
+
+    AtmSession(AtmMachine atmMachine, BankService bankService, AuthenticationToken authCode, Clock clock,
+            Duration idleTimeout) {
+        this.atmMachine = Objects.requireNonNull(atmMachine, "atmMachine == null");
+        this.bankService = Objects.requireNonNull(bankService, "bankService == null");
+        this.authCode = Objects.requireNonNull(authCode, "authCode == null");
+        this.clock = Objects.requireNonNull(clock, "clock == null");
+        this.idleTimeout = Objects.requireNonNull(idleTimeout, "idleTimeout == null");
+        this.lastActivity = clock.instant();
+    }
+
+    public synchronized Payment withdraw(Money amount) {
+        if (!closed && isIdle(clock.instant())) {
+            closeExpired();
+        }
+        if (expired) {
+            throw new SessionExpiredException();
+        }
+        if (closed) {
+            throw new IllegalStateException("session is closed");
+        }
+        lastActivity = clock.instant();
+        List<Banknote> banknotes = atmMachine.reserveBanknotes(amount);
+        Payment payment;
+        try {
+            payment = chargeAndRelease(amount, banknotes);
+        } catch (RuntimeException e) {
+            atmMachine.restoreBanknotes(banknotes);
+            throw e;
+        }
+        commitPending = true;
+        try {
+            commit();
+        } catch (RuntimeException e) {
+            // banknotes are already paid out, the commit is retried before the next withdrawal and on close
+        }
+        return payment;
+    }
+
+    private Payment chargeAndRelease(Money amount, List<Banknote> banknotes) {
+        if (commitPending) {
+            commit();
+        }
+        if (!transactionStarted) {
+            atmMachine.awaitCompensations(authCode);
+            bankService.startTransaction(authCode);
+            transactionStarted = true;
+        }
+        try {
+            atmMachine.chargeAccount(amount, authCode);
+        } catch (InsufficientFundsException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            abort(e);
+            throw e;
+        }
+        try {
+            return atmMachine.releasePayment(banknotes);
+        } catch (RuntimeException e) {
+            abort(e);
+            throw e;
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Commits what has been paid out, or aborts the open transaction when nothing has. If the commit fails, the
+     * exception is propagated and the session stays open so that closing it can be retried.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        if (commitPending) {
+            commit();
+        } else if (transactionStarted) {
+            abort(null);
+        }
+        closed = true;
+        atmMachine.sessionClosed(this);
+    }
+
+    synchronized boolean closeIfIdle(Instant now) {
+        if (!closed && isIdle(now)) {
+            closeExpired();
+            return true;
+        }
+        return false;
+    }
+
+    private void closeExpired() {
+        close();
+        expired = true;
+    }
+
+    private boolean isIdle(Instant now) {
+        return !now.isBefore(lastActivity.plus(idleTimeout));
+    }
+
+    private void commit() {
+        bankService.commit(authCode);
+        commitPending = false;
+        transactionStarted = false;
+    }
+
+    private void abort(RuntimeException failure) {
+        transactionStarted = false;
+        atmMachine.abortTransaction(authCode, failure);
+    }
+
+}
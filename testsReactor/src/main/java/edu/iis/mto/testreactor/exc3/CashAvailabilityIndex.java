@@ -0,0 +1,189 @@
+package edu.iis.mto.testreactor.exc3;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Amounts that can be paid out from the banknotes currently held by the money depot.
+ * <p>
+ * For every currency the index keeps one bitset per denomination, ordered from the lowest one. Bit {@code s} of the
+ * {@code i}-th bitset is set when {@code s} can be paid with the stocked notes of the {@code i} lowest denominations.
+ * Loading, reserving or restoring notes rebuilds only the bitsets from the changed denomination upwards, so checking an
+ * amount is a single bit lookup.
+ * <p>
+ * Notes are taken out of the index when they are reserved for a withdrawal, before the card is authorized, so
+ * concurrent withdrawals are never planned onto the same notes. Notes of a withdrawal that does not reach the money
+ * depot, or that the depot refuses, are restored.
+ */
+public class CashAvailabilityIndex {
+
+    private final int maxWithdrawal;
+    private final Map<Currency, Stock> stocks = new EnumMap<>(Currency.class);
+
+    public CashAvailabilityIndex(int maxWithdrawal) {
+        if (maxWithdrawal <= 0) {
+            throw new IllegalArgumentException("maxWithdrawal <= 0");
+        }
+        this.maxWithdrawal = maxWithdrawal;
+        for (Currency currency : Currency.values()) {
+            stocks.put(currency, new Stock(currency));
+        }
+    }
+
+    public int getMaxWithdrawal() {
+        return maxWithdrawal;
+    }
+
+    public synchronized void load(Banknote banknote, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0");
+        }
+        stocks.get(banknote.getCurrency())
+              .add(banknote, count);
+    }
+
+    /**
+     * Puts back banknotes of a reservation that was not paid out.
+     */
+    public synchronized void restore(List<Banknote> banknotes) {
+        for (Stock stock : stocks.values()) {
+            stock.restore(banknotes);
+        }
+    }
+
+    public synchronized boolean canDispense(Money money) {
+        int amount = money.getAmount();
+        return amount > 0 && amount <= maxWithdrawal && stocks.get(money.getCurrency())
+                                                              .reachable()
+                                                              .get(amount);
+    }
+
+    public synchronized int largestDispensableAmount(Currency currency) {
+        return stocks.get(currency).largestDispensable;
+    }
+
+    /**
+     * Takes banknotes adding up to the given amount out of the current stock.
+     *
+     * @return the reserved banknotes, empty when the amount cannot be paid from the stock
+     */
+    public synchronized Optional<List<Banknote>> reserve(Money money) {
+        if (!canDispense(money)) {
+            return Optional.empty();
+        }
+        Stock stock = stocks.get(money.getCurrency());
+        List<Banknote> banknotes = stock.plan(money.getAmount());
+        stock.remove(banknotes);
+        return Optional.of(banknotes);
+    }
+
+    private final class Stock {
+
+        private final List<Banknote> denominations;
+        private final int[] counts;
+        private final BitSet[] reachable;
+        private int largestDispensable;
+
+        private Stock(Currency currency) {
+            denominations = new ArrayList<>(Banknote.forCurrency(currency));
+            denominations.sort(Comparator.comparingInt(Banknote::getValue));
+            counts = new int[denominations.size()];
+            reachable = new BitSet[denominations.size()];
+            rebuildFrom(0);
+        }
+
+        private BitSet reachable() {
+            return reachable[reachable.length - 1];
+        }
+
+        private void add(Banknote banknote, int count) {
+            int index = denominations.indexOf(banknote);
+            counts[index] += count;
+            rebuildFrom(index);
+        }
+
+        private void restore(List<Banknote> banknotes) {
+            int lowestChanged = counts.length;
+            for (Banknote banknote : banknotes) {
+                int index = denominations.indexOf(banknote);
+                if (index >= 0) {
+                    counts[index]++;
+                    lowestChanged = Math.min(lowestChanged, index);
+                }
+            }
+            if (lowestChanged < counts.length) {
+                rebuildFrom(lowestChanged);
+            }
+        }
+
+        private void remove(List<Banknote> banknotes) {
+            int lowestChanged = counts.length;
+            for (Banknote banknote : banknotes) {
+                int index = denominations.indexOf(banknote);
+                if (counts[index] > 0) {
+                    counts[index]--;
+                    lowestChanged = Math.min(lowestChanged, index);
+                }
+            }
+            if (lowestChanged < counts.length) {
+                rebuildFrom(lowestChanged);
+            }
+        }
+
+        private void rebuildFrom(int index) {
+            for (int i = index; i < reachable.length; i++) {
+                reachable[i] = withDenomination(i == 0 ? onlyZero() : reachable[i - 1], i);
+            }
+            largestDispensable = Math.max(reachable().previousSetBit(maxWithdrawal), 0);
+        }
+
+        /**
+         * Bounded knapsack step: {@code used[s]} is the fewest notes of the denomination needed on top of
+         * {@code lower} to pay {@code s}.
+         */
+        private BitSet withDenomination(BitSet lower, int index) {
+            int value = denominations.get(index)
+                                     .getValue();
+            int[] used = new int[maxWithdrawal + 1];
+            BitSet result = new BitSet(maxWithdrawal + 1);
+            for (int amount = 0; amount <= maxWithdrawal; amount++) {
+                if (lower.get(amount)) {
+                    result.set(amount);
+                } else if (amount >= value && result.get(amount - value) && used[amount - value] < counts[index]) {
+                    result.set(amount);
+                    used[amount] = used[amount - value] + 1;
+                }
+            }
+            return result;
+        }
+
+        private List<Banknote> plan(int amount) {
+            List<Banknote> banknotes = new ArrayList<>();
+            for (int i = denominations.size() - 1; i >= 0; i--) {
+                BitSet lower = i == 0 ? onlyZero() : reachable[i - 1];
+                Banknote banknote = denominations.get(i);
+                int count = Math.min(counts[i], amount / banknote.getValue());
+                while (!lower.get(amount - count * banknote.getValue())) {
+                    count--;
+                }
+                banknotes.addAll(Collections.nCopies(count, banknote));
+                amount -= count * banknote.getValue();
+            }
+            return banknotes;
+        }
+
+        private BitSet onlyZero() {
+            BitSet zero = new BitSet(maxWithdrawal + 1);
+            zero.set(0);
+            return zero;
+        }
+    }
+
+}
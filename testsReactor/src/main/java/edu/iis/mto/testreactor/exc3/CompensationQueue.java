@@ -0,0 +1,372 @@
+package edu.iis.mto.testreactor.exc3;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aborts bank transactions of failed withdrawals in the background.
+ * <p>
+ * Aborts are kept in a bounded in-memory queue and drained on the executor in batches, one batch per task. When the
+ * queue is full they spill over to a bounded overflow queue, drained after the main one. Only when both are full is
+ * the abort attempted once on the calling thread, with its retries queued as usual. A failed abort is queued again
+ * after an exponential backoff, capped at the maximum backoff and measured by the scheduler, so it does not hold up
+ * the rest of the batch.
+ * <p>
+ * The bank keys transactions by {@link AuthenticationToken}, so {@link #compensateNow(AuthenticationToken)} has to be
+ * called before a new transaction is started with a token that may still have an abort pending.
+ */
+public class CompensationQueue implements AutoCloseable {
+
+    private final BankService bankService;
+    private final Clock clock;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final int batchSize;
+    private final ScheduledExecutorService providedScheduler;
+    private ScheduledExecutorService ownedScheduler;
+    private final Executor executor;
+
+    private final BlockingQueue<Compensation> queue;
+    private final BlockingQueue<Compensation> overflow;
+    private final Set<Compensation> outstanding = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong failedCompensations = new AtomicLong();
+    private final AtomicLong spilledCompensations = new AtomicLong();
+    private final AtomicLong rejectedCompensations = new AtomicLong();
+    private volatile boolean closed;
+
+    private CompensationQueue(Builder builder) {
+        this.bankService = Objects.requireNonNull(builder.bankService, "bankService == null");
+        this.clock = Objects.requireNonNull(builder.clock, "clock == null");
+        this.initialBackoffMillis = Objects.requireNonNull(builder.initialBackoff, "initialBackoff == null")
+                                           .toMillis();
+        this.maxBackoffMillis = Objects.requireNonNull(builder.maxBackoff, "maxBackoff == null")
+                                       .toMillis();
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("initialBackoff < 0 or maxBackoff < initialBackoff");
+        }
+        this.maxAttempts = requirePositive(builder.maxAttempts, "maxAttempts");
+        this.batchSize = requirePositive(builder.batchSize, "batchSize");
+        this.queue = new LinkedBlockingQueue<>(requirePositive(builder.capacity, "capacity"));
+        this.overflow = new LinkedBlockingQueue<>(requirePositive(builder.overflowCapacity, "overflowCapacity"));
+        this.providedScheduler = builder.scheduler;
+        this.executor = builder.executor != null ? builder.executor : scheduler();
+    }
+
+    public void abort(AuthenticationToken authCode) {
+        Compensation compensation = new Compensation(Objects.requireNonNull(authCode, "authCode == null"),
+                clock.instant());
+        outstanding.add(compensation);
+        if (closed) {
+            attemptUntilDone(compensation);
+            return;
+        }
+        requeue(compensation);
+    }
+
+    /**
+     * Performs the pending aborts of the given token on the calling thread, once each. Exceptions of the bank are
+     * propagated and the abort stays pending.
+     */
+    public void compensateNow(AuthenticationToken authCode) {
+        for (Compensation compensation : outstanding) {
+            if (!compensation.authCode.equals(authCode)) {
+                continue;
+            }
+            synchronized (compensation) {
+                if (!compensation.done) {
+                    bankService.abort(authCode);
+                    complete(compensation);
+                }
+            }
+        }
+    }
+
+    public int pendingCompensations() {
+        return outstanding.size();
+    }
+
+    public Duration oldestPendingAge() {
+        Instant now = clock.instant();
+        return outstanding.stream()
+                          .map(compensation -> Duration.between(compensation.enqueuedAt, now))
+                          .max(Duration::compareTo)
+                          .orElse(Duration.ZERO);
+    }
+
+    public long failedCompensations() {
+        return failedCompensations.get();
+    }
+
+    /**
+     * @return number of aborts that found the queue full and were put into the overflow queue
+     */
+    public long spilledCompensations() {
+        return spilledCompensations.get();
+    }
+
+    /**
+     * @return number of aborts that found both queues full and were attempted on the calling thread
+     */
+    public long rejectedCompensations() {
+        return rejectedCompensations.get();
+    }
+
+    /**
+     * Shuts down the scheduler owned by the queue and performs the aborts still pending on the calling thread,
+     * retrying each without delay. Aborts requested afterwards are performed on the calling thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (ownedScheduler != null) {
+                ownedScheduler.shutdown();
+            }
+        }
+        for (Compensation compensation : outstanding) {
+            attemptUntilDone(compensation);
+        }
+    }
+
+    private boolean enqueue(Compensation compensation) {
+        if (!queue.offer(compensation)) {
+            if (!overflow.offer(compensation)) {
+                rejectedCompensations.incrementAndGet();
+                return false;
+            }
+            spilledCompensations.incrementAndGet();
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    private void requeue(Compensation compensation) {
+        if (!enqueue(compensation)) {
+            attempt(compensation);
+        }
+    }
+
+    private void scheduleDrain() {
+        if (closed || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(this::drainBatch);
+        } catch (RejectedExecutionException e) {
+            draining.set(false);
+        }
+    }
+
+    private void drainBatch() {
+        try {
+            for (int i = 0; i < batchSize; i++) {
+                Compensation compensation = nextQueued();
+                if (compensation == null) {
+                    break;
+                }
+                attempt(compensation);
+            }
+        } finally {
+            draining.set(false);
+        }
+        if (!queue.isEmpty() || !overflow.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private Compensation nextQueued() {
+        Compensation compensation = queue.poll();
+        return compensation != null ? compensation : overflow.poll();
+    }
+
+    private void attempt(Compensation compensation) {
+        synchronized (compensation) {
+            if (compensation.done) {
+                return;
+            }
+            try {
+                bankService.abort(compensation.authCode);
+                complete(compensation);
+                return;
+            } catch (RuntimeException e) {
+                compensation.attempts++;
+            }
+            if (compensation.attempts >= maxAttempts) {
+                complete(compensation);
+                failedCompensations.incrementAndGet();
+                return;
+            }
+        }
+        if (!closed) {
+            retryLater(compensation);
+        }
+    }
+
+    private void attemptUntilDone(Compensation compensation) {
+        while (!compensation.done) {
+            attempt(compensation);
+        }
+    }
+
+    private void retryLater(Compensation compensation) {
+        long delay = backoffMillis(compensation.attempts);
+        if (delay == 0) {
+            requeue(compensation);
+            return;
+        }
+        try {
+            scheduler().schedule(() -> requeue(compensation), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            requeue(compensation);
+        }
+    }
+
+    /**
+     * {@code initialBackoff * 2^(attempts - 1)}, clamped to the maximum backoff before it can overflow.
+     */
+    private long backoffMillis(int attempts) {
+        int shift = attempts - 1;
+        if (shift >= Long.numberOfLeadingZeros(initialBackoffMillis) - 1) {
+            return initialBackoffMillis == 0 ? 0 : maxBackoffMillis;
+        }
+        return Math.min(initialBackoffMillis << shift, maxBackoffMillis);
+    }
+
+    private void complete(Compensation compensation) {
+        compensation.done = true;
+        outstanding.remove(compensation);
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (providedScheduler != null) {
+            return providedScheduler;
+        }
+        if (ownedScheduler == null) {
+            ownedScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "atm-compensation");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return ownedScheduler;
+    }
+
+    private static int requirePositive(int value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " <= 0");
+        }
+        return value;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private static final class Compensation {
+
+        private final AuthenticationToken authCode;
+        private final Instant enqueuedAt;
+        private int attempts;
+        private volatile boolean done;
+
+        private Compensation(AuthenticationToken authCode, Instant enqueuedAt) {
+            this.authCode = authCode;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    public static final class Builder {
+
+        private BankService bankService;
+        private Executor executor;
+        private ScheduledExecutorService scheduler;
+        private Clock clock = Clock.systemUTC();
+        private int capacity = 1024;
+        private int overflowCapacity = 4096;
+        private int maxAttempts = 5;
+        private Duration initialBackoff = Duration.ofMillis(100);
+        private Duration maxBackoff = Duration.ofSeconds(30);
+        private int batchSize = 16;
+
+        private Builder() {}
+
+        public Builder withBankService(BankService bankService) {
+            this.bankService = bankService;
+            return this;
+        }
+
+        /**
+         * Executor draining the queue. Defaults to the scheduler.
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Scheduler delaying retries. Without it the queue creates, and shuts down on close, a single daemon thread.
+         */
+        public Builder withScheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public Builder withClock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public Builder withCapacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder withOverflowCapacity(int overflowCapacity) {
+            this.overflowCapacity = overflowCapacity;
+            return this;
+        }
+
+        public Builder withMaxAttempts(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+            return this;
+        }
+
+        public Builder withInitialBackoff(Duration initialBackoff) {
+            this.initialBackoff = initialBackoff;
+            return this;
+        }
+
+        /**
+         * Upper bound of the delay between retries. Must not be lower than the initial backoff.
+         */
+        public Builder withMaxBackoff(Duration maxBackoff) {
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        public Builder withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public CompensationQueue build() {
+            return new CompensationQueue(this);
+        }
+    }
+
+}
@@ -0,0 +1,7 @@
+package edu.iis.mto.testreactor.exc3;
+
+public class SessionExpiredException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+}
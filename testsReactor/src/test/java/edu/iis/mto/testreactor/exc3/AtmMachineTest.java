@@ -7,8 +7,11 @@ import static org.junit.Assert.fail;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -254,4 +257,270 @@ public class AtmMachineTest {
         Assert.assertEquals(20, banknotes.get(1).getValue());
         Assert.assertEquals(10, banknotes.get(0).getValue());
     }
+
+    @Test
+    public void shouldAddFailedAbortAsSuppressedWhenNoCompensationQueueIsConfigured() {
+        Money money = Money.builder()
+                .withAmount(250)
+                .withCurrency(Currency.PL)
+                .build();
+        IllegalStateException abortFailure = new IllegalStateException();
+
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(false);
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.of(authenticationToken));
+
+        Mockito.doThrow(abortFailure)
+                .when(bankService)
+                .abort(Mockito.any(AuthenticationToken.class));
+
+        try {
+            atmMachine.withdraw(money, card);
+            fail();
+        } catch (InsufficientFundsException ex) {
+            Assert.assertArrayEquals(new Throwable[] {abortFailure}, ex.getSuppressed());
+        }
+    }
+
+    @Test
+    public void shouldReturnBeforeAbortWhenCompensationQueueIsConfigured() {
+        Money money = Money.builder()
+                .withAmount(250)
+                .withCurrency(Currency.PL)
+                .build();
+        List<Runnable> scheduledTasks = new ArrayList<>();
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .build();
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withCompensationQueue(compensations)
+                .build();
+
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(false);
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.of(authenticationToken));
+
+        try {
+            atmMachine.withdraw(money, card);
+            fail();
+        } catch (InsufficientFundsException ex) {
+            Mockito.verify(bankService, Mockito.never())
+                    .abort(Mockito.any(AuthenticationToken.class));
+            Assert.assertEquals(1, compensations.pendingCompensations());
+        }
+
+        scheduledTasks.get(0)
+                .run();
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+    }
+
+    @Test
+    public void shouldPerformPendingAbortBeforeStartingNewTransactionWithSameToken() {
+        Money money = Money.builder()
+                .withAmount(250)
+                .withCurrency(Currency.PL)
+                .build();
+        List<Runnable> scheduledTasks = new ArrayList<>();
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .build();
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withCompensationQueue(compensations)
+                .build();
+
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(false)
+                .thenReturn(true);
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.of(authenticationToken));
+
+        Mockito.when(moneyDepot.releaseBanknotes(Mockito.anyListOf(Banknote.class)))
+                .thenReturn(true);
+
+        try {
+            atmMachine.withdraw(money, card);
+            fail();
+        } catch (InsufficientFundsException ex) {
+            atmMachine.withdraw(money, card);
+        }
+
+        InOrder inOrder = Mockito.inOrder(bankService);
+        inOrder.verify(bankService)
+                .startTransaction(authenticationToken);
+        inOrder.verify(bankService)
+                .abort(authenticationToken);
+        inOrder.verify(bankService)
+                .startTransaction(authenticationToken);
+        inOrder.verify(bankService)
+                .commit(authenticationToken);
+        Assert.assertEquals(0, compensations.pendingCompensations());
+    }
+
+    @Test
+    public void shouldRejectAmountMissingFromStockBeforeAuthorization() {
+        Money money = Money.builder()
+                .withAmount(300)
+                .withCurrency(Currency.PL)
+                .build();
+        CashAvailabilityIndex cashAvailability = new CashAvailabilityIndex(1000);
+        cashAvailability.load(Banknote.PL100, 2);
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withCashAvailabilityIndex(cashAvailability)
+                .build();
+
+        try {
+            atmMachine.withdraw(money, card);
+            fail();
+        } catch (WrongMoneyAmountException ex) {
+            Mockito.verifyZeroInteractions(cardProviderService, bankService, moneyDepot);
+        }
+    }
+
+    @Test
+    public void shouldReleaseBanknotesFromStockAndUpdateCashAvailability() {
+        Money money = Money.builder()
+                .withAmount(60)
+                .withCurrency(Currency.PL)
+                .build();
+        CashAvailabilityIndex cashAvailability = new CashAvailabilityIndex(1000);
+        cashAvailability.load(Banknote.PL50, 1);
+        cashAvailability.load(Banknote.PL20, 3);
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withCashAvailabilityIndex(cashAvailability)
+                .build();
+
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(true);
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.of(authenticationToken));
+
+        Mockito.when(moneyDepot.releaseBanknotes(Mockito.anyListOf(Banknote.class)))
+                .thenReturn(true);
+
+        Payment payment = atmMachine.withdraw(money, card);
+
+        Assert.assertEquals(Arrays.asList(Banknote.PL20, Banknote.PL20, Banknote.PL20), payment.getValue());
+        Assert.assertEquals(50, cashAvailability.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test
+    public void shouldRejectSecondWithdrawalOfReservedBanknotesBeforeAuthorization() {
+        Money money = Money.builder()
+                .withAmount(100)
+                .withCurrency(Currency.PL)
+                .build();
+        CashAvailabilityIndex cashAvailability = new CashAvailabilityIndex(1000);
+        cashAvailability.load(Banknote.PL100, 1);
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withCashAvailabilityIndex(cashAvailability)
+                .build();
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenAnswer(invocation -> {
+                    try {
+                        atmMachine.withdraw(money, card);
+                        fail();
+                    } catch (WrongMoneyAmountException ex) {
+                        Mockito.verify(bankService, Mockito.never())
+                                .startTransaction(Mockito.any(AuthenticationToken.class));
+                    }
+                    return Optional.of(authenticationToken);
+                });
+
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(true);
+
+        Mockito.when(moneyDepot.releaseBanknotes(Mockito.anyListOf(Banknote.class)))
+                .thenReturn(true);
+
+        atmMachine.withdraw(money, card);
+
+        Mockito.verify(cardProviderService, Mockito.times(1))
+                .authorize(card);
+        Mockito.verify(bankService, Mockito.times(1))
+                .charge(authenticationToken, money);
+    }
+
+    @Test
+    public void shouldRestoreReservedBanknotesWhenMoneyDepotRefusesToReleaseThem() {
+        Money money = Money.builder()
+                .withAmount(100)
+                .withCurrency(Currency.PL)
+                .build();
+        CashAvailabilityIndex cashAvailability = new CashAvailabilityIndex(1000);
+        cashAvailability.load(Banknote.PL100, 1);
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withCashAvailabilityIndex(cashAvailability)
+                .build();
+
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(true);
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.of(authenticationToken));
+
+        Mockito.when(moneyDepot.releaseBanknotes(Mockito.anyListOf(Banknote.class)))
+                .thenReturn(false);
+
+        try {
+            atmMachine.withdraw(money, card);
+            fail();
+        } catch (MoneyDepotException ex) {
+            Assert.assertEquals(100, cashAvailability.largestDispensableAmount(Currency.PL));
+        }
+    }
+
+    @Test
+    public void shouldRestoreReservedBanknotesWhenCardIsNotAuthorized() {
+        Money money = Money.builder()
+                .withAmount(100)
+                .withCurrency(Currency.PL)
+                .build();
+        CashAvailabilityIndex cashAvailability = new CashAvailabilityIndex(1000);
+        cashAvailability.load(Banknote.PL100, 1);
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withCashAvailabilityIndex(cashAvailability)
+                .build();
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.empty());
+
+        try {
+            atmMachine.withdraw(money, card);
+            fail();
+        } catch (CardAuthorizationException ex) {
+            Assert.assertEquals(100, cashAvailability.largestDispensableAmount(Currency.PL));
+        }
+    }
 }
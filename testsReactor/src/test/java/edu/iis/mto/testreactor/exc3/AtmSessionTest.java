@@ -0,0 +1,380 @@
+package edu.iis.mto.testreactor.exc3;
+
+import static org.junit.Assert.fail;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class AtmSessionTest {
+
+    private CardProviderService cardProviderService;
+    private BankService bankService;
+    private MoneyDepot moneyDepot;
+    private MutableClock clock;
+    private ScheduledExecutorService sessionSweeper;
+    private AtmMachine atmMachine;
+    private Card card;
+    private AuthenticationToken authenticationToken;
+    private Money money;
+
+    @Before
+    public void init() {
+        cardProviderService = Mockito.mock(CardProviderService.class);
+        bankService = Mockito.mock(BankService.class);
+        moneyDepot = Mockito.mock(MoneyDepot.class);
+        clock = new MutableClock(Instant.parse("2018-01-01T10:00:00Z"));
+        sessionSweeper = Mockito.mock(ScheduledExecutorService.class);
+
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withClock(clock)
+                .withSessionIdleTimeout(Duration.ofMinutes(1))
+                .withSessionSweeper(sessionSweeper)
+                .withSessionSweepInterval(Duration.ofSeconds(10))
+                .build();
+        card = Card.builder()
+                .withCardNumber("test")
+                .withPinNumber(1111)
+                .build();
+        authenticationToken = AuthenticationToken.builder()
+                .withAuthorizationCode(1111)
+                .withUserId("1")
+                .build();
+        money = Money.builder()
+                .withAmount(100)
+                .withCurrency(Currency.PL)
+                .build();
+
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.of(authenticationToken));
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(true);
+        Mockito.when(moneyDepot.releaseBanknotes(Mockito.anyListOf(Banknote.class)))
+                .thenReturn(true);
+    }
+
+    @Test(expected = CardAuthorizationException.class)
+    public void shouldThrowCardAuthorizationExceptionWhenAuthCodeNotPresent() {
+        Mockito.when(cardProviderService.authorize(Mockito.any(Card.class)))
+                .thenReturn(Optional.empty());
+
+        atmMachine.openSession(card);
+    }
+
+    @Test
+    public void shouldAuthorizeOnceAndCommitEveryPaidOutWithdrawal() {
+        AtmSession session = atmMachine.openSession(card);
+        session.withdraw(money);
+        session.withdraw(money);
+        session.close();
+
+        Mockito.verify(cardProviderService, Mockito.times(1))
+                .authorize(card);
+        Mockito.verify(bankService, Mockito.times(2))
+                .startTransaction(authenticationToken);
+        Mockito.verify(bankService, Mockito.times(2))
+                .charge(authenticationToken, money);
+        Mockito.verify(bankService, Mockito.times(2))
+                .commit(authenticationToken);
+        Mockito.verify(bankService, Mockito.never())
+                .abort(Mockito.any(AuthenticationToken.class));
+    }
+
+    @Test
+    public void shouldKeepTransactionOpenWhenChargeIsRefused() {
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(false)
+                .thenReturn(true);
+        AtmSession session = atmMachine.openSession(card);
+
+        try {
+            session.withdraw(money);
+            fail();
+        } catch (InsufficientFundsException ex) {
+            Mockito.verify(bankService, Mockito.never())
+                    .abort(Mockito.any(AuthenticationToken.class));
+        }
+        session.withdraw(money);
+        session.close();
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .startTransaction(authenticationToken);
+        Mockito.verify(bankService, Mockito.times(1))
+                .commit(authenticationToken);
+    }
+
+    @Test
+    public void shouldAbortOnlyFailedWithdrawalWhenMoneyDepotFails() {
+        Money failedMoney = Money.builder()
+                .withAmount(50)
+                .withCurrency(Currency.PL)
+                .build();
+        Mockito.when(moneyDepot.releaseBanknotes(Mockito.anyListOf(Banknote.class)))
+                .thenReturn(true)
+                .thenReturn(false);
+        AtmSession session = atmMachine.openSession(card);
+        session.withdraw(money);
+
+        try {
+            session.withdraw(failedMoney);
+            fail();
+        } catch (MoneyDepotException ex) {
+            InOrder inOrder = Mockito.inOrder(bankService);
+            inOrder.verify(bankService)
+                    .charge(authenticationToken, money);
+            inOrder.verify(bankService)
+                    .commit(authenticationToken);
+            inOrder.verify(bankService)
+                    .startTransaction(authenticationToken);
+            inOrder.verify(bankService)
+                    .charge(authenticationToken, failedMoney);
+            inOrder.verify(bankService)
+                    .abort(authenticationToken);
+        }
+        session.close();
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .commit(authenticationToken);
+    }
+
+    @Test
+    public void shouldReturnPaymentAndRetryCommitOnCloseWhenCommitFails() {
+        Mockito.doThrow(new IllegalStateException())
+                .doNothing()
+                .when(bankService)
+                .commit(Mockito.any(AuthenticationToken.class));
+        AtmSession session = atmMachine.openSession(card);
+
+        Payment payment = session.withdraw(money);
+        session.close();
+
+        Assert.assertEquals(1, payment.getValue()
+                .size());
+        Mockito.verify(bankService, Mockito.times(2))
+                .commit(authenticationToken);
+        Mockito.verify(bankService, Mockito.never())
+                .abort(Mockito.any(AuthenticationToken.class));
+        Assert.assertTrue(session.isClosed());
+    }
+
+    @Test
+    public void shouldNotChargeNextWithdrawalUntilFailedCommitSucceeds() {
+        Mockito.doThrow(new IllegalStateException())
+                .when(bankService)
+                .commit(Mockito.any(AuthenticationToken.class));
+        AtmSession session = atmMachine.openSession(card);
+        session.withdraw(money);
+
+        try {
+            session.withdraw(money);
+            fail();
+        } catch (IllegalStateException ex) {
+            Mockito.verify(bankService, Mockito.times(1))
+                    .charge(authenticationToken, money);
+            Mockito.verify(bankService, Mockito.times(1))
+                    .startTransaction(authenticationToken);
+        }
+    }
+
+    @Test
+    public void shouldKeepSessionOpenWhenCommitOnCloseFails() {
+        Mockito.doThrow(new IllegalStateException())
+                .doThrow(new IllegalStateException())
+                .doNothing()
+                .when(bankService)
+                .commit(Mockito.any(AuthenticationToken.class));
+        AtmSession session = atmMachine.openSession(card);
+        session.withdraw(money);
+
+        try {
+            session.close();
+            fail();
+        } catch (IllegalStateException ex) {
+            Assert.assertFalse(session.isClosed());
+        }
+        session.close();
+
+        Assert.assertTrue(session.isClosed());
+        Mockito.verify(bankService, Mockito.times(3))
+                .commit(authenticationToken);
+    }
+
+    @Test
+    public void shouldThrowSessionExpiredExceptionWhenSessionIsIdle() {
+        AtmSession session = atmMachine.openSession(card);
+        session.withdraw(money);
+        clock.advance(Duration.ofMinutes(1));
+
+        try {
+            session.withdraw(money);
+            fail();
+        } catch (SessionExpiredException ex) {
+            Mockito.verify(bankService, Mockito.times(1))
+                    .charge(authenticationToken, money);
+            Mockito.verify(bankService, Mockito.times(1))
+                    .commit(authenticationToken);
+            Assert.assertTrue(session.isClosed());
+        }
+    }
+
+    @Test
+    public void shouldThrowSessionExpiredExceptionWhenSweepClosedIdleSession() {
+        AtmSession session = atmMachine.openSession(card);
+        ArgumentCaptor<Runnable> sweep = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(sessionSweeper)
+                .scheduleAtFixedRate(sweep.capture(), Mockito.anyLong(), Mockito.anyLong(),
+                        Mockito.any(TimeUnit.class));
+        clock.advance(Duration.ofMinutes(1));
+        sweep.getValue()
+                .run();
+
+        try {
+            session.withdraw(money);
+            fail();
+        } catch (SessionExpiredException ex) {
+            Assert.assertTrue(session.isClosed());
+            Mockito.verify(bankService, Mockito.never())
+                    .charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class));
+        }
+    }
+
+    @Test
+    public void shouldNotCloseOtherIdleSessionsWhenOpeningSession() {
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(false);
+        AtmSession idleSession = atmMachine.openSession(card);
+        try {
+            idleSession.withdraw(money);
+            fail();
+        } catch (InsufficientFundsException ex) {
+            clock.advance(Duration.ofMinutes(1));
+        }
+
+        atmMachine.openSession(card);
+
+        Assert.assertFalse(idleSession.isClosed());
+        Mockito.verify(bankService, Mockito.never())
+                .abort(Mockito.any(AuthenticationToken.class));
+    }
+
+    @Test
+    public void shouldCloseIdleSessions() {
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(false);
+        AtmSession idleSession = atmMachine.openSession(card);
+        try {
+            idleSession.withdraw(money);
+            fail();
+        } catch (InsufficientFundsException ex) {
+            clock.advance(Duration.ofSeconds(30));
+        }
+        AtmSession activeSession = atmMachine.openSession(card);
+        clock.advance(Duration.ofSeconds(30));
+
+        Assert.assertEquals(1, atmMachine.closeIdleSessions());
+        Assert.assertTrue(idleSession.isClosed());
+        Assert.assertFalse(activeSession.isClosed());
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+    }
+
+    @Test
+    public void shouldCommitIdleSessionOnScheduledSweep() {
+        Mockito.doThrow(new IllegalStateException())
+                .doNothing()
+                .when(bankService)
+                .commit(Mockito.any(AuthenticationToken.class));
+        AtmSession session = atmMachine.openSession(card);
+        session.withdraw(money);
+        ArgumentCaptor<Runnable> sweep = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(sessionSweeper)
+                .scheduleAtFixedRate(sweep.capture(), Mockito.eq(10000L), Mockito.eq(10000L),
+                        Mockito.eq(TimeUnit.MILLISECONDS));
+
+        sweep.getValue()
+                .run();
+        Assert.assertFalse(session.isClosed());
+
+        clock.advance(Duration.ofMinutes(1));
+        sweep.getValue()
+                .run();
+
+        Assert.assertTrue(session.isClosed());
+        Mockito.verify(bankService, Mockito.times(2))
+                .commit(authenticationToken);
+    }
+
+    @Test
+    public void shouldStopSweepAndCloseOpenSessionsWhenMachineIsClosed() {
+        ScheduledFuture<?> sweep = Mockito.mock(ScheduledFuture.class);
+        Mockito.doReturn(sweep)
+                .when(sessionSweeper)
+                .scheduleAtFixedRate(Mockito.any(Runnable.class), Mockito.anyLong(), Mockito.anyLong(),
+                        Mockito.any(TimeUnit.class));
+        AtmSession session = atmMachine.openSession(card);
+
+        atmMachine.close();
+
+        Assert.assertTrue(session.isClosed());
+        Mockito.verify(sweep)
+                .cancel(false);
+        Mockito.verify(sessionSweeper, Mockito.never())
+                .shutdown();
+    }
+
+    @Test
+    public void shouldRestoreReservedBanknotesWhenChargeIsRefused() {
+        CashAvailabilityIndex cashAvailability = new CashAvailabilityIndex(1000);
+        cashAvailability.load(Banknote.PL100, 1);
+        atmMachine = AtmMachine.builder()
+                .withCardService(cardProviderService)
+                .withBankService(bankService)
+                .withMoneyDepot(moneyDepot)
+                .withClock(clock)
+                .withSessionSweeper(sessionSweeper)
+                .withCashAvailabilityIndex(cashAvailability)
+                .build();
+        Mockito.when(bankService.charge(Mockito.any(AuthenticationToken.class), Mockito.any(Money.class)))
+                .thenReturn(false)
+                .thenReturn(true);
+        AtmSession session = atmMachine.openSession(card);
+
+        try {
+            session.withdraw(money);
+            fail();
+        } catch (InsufficientFundsException ex) {
+            Assert.assertEquals(100, cashAvailability.largestDispensableAmount(Currency.PL));
+        }
+        session.withdraw(money);
+
+        Assert.assertEquals(0, cashAvailability.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldThrowIllegalStateExceptionWhenOpeningSessionOnClosedMachine() {
+        atmMachine.close();
+
+        atmMachine.openSession(card);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldThrowIllegalStateExceptionWhenWithdrawingFromClosedSession() {
+        AtmSession session = atmMachine.openSession(card);
+        session.close();
+
+        session.withdraw(money);
+    }
+}
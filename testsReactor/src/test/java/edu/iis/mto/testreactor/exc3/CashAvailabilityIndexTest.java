@@ -0,0 +1,106 @@
+package edu.iis.mto.testreactor.exc3;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CashAvailabilityIndexTest {
+
+    private CashAvailabilityIndex index;
+
+    @Before
+    public void init() {
+        index = new CashAvailabilityIndex(1000);
+    }
+
+    @Test
+    public void shouldNotDispenseAnythingFromEmptyStock() {
+        Assert.assertFalse(index.canDispense(pln(10)));
+        Assert.assertEquals(0, index.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test
+    public void shouldDispenseOnlyAmountsReachableWithLoadedBanknotes() {
+        index.load(Banknote.PL50, 1);
+        index.load(Banknote.PL20, 3);
+
+        Assert.assertTrue(index.canDispense(pln(60)));
+        Assert.assertTrue(index.canDispense(pln(110)));
+        Assert.assertFalse(index.canDispense(pln(10)));
+        Assert.assertFalse(index.canDispense(pln(30)));
+        Assert.assertFalse(index.canDispense(Money.builder()
+                .withAmount(50)
+                .withCurrency(Currency.EU)
+                .build()));
+        Assert.assertEquals(110, index.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test
+    public void shouldNotDispenseMoreThanMaxWithdrawal() {
+        index.load(Banknote.PL500, 4);
+
+        Assert.assertTrue(index.canDispense(pln(1000)));
+        Assert.assertFalse(index.canDispense(pln(1500)));
+        Assert.assertEquals(1000, index.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test
+    public void shouldTakeReservedBanknotesOutOfStock() {
+        index.load(Banknote.PL100, 2);
+        index.load(Banknote.PL10, 1);
+
+        index.reserve(pln(110));
+
+        Assert.assertTrue(index.canDispense(pln(100)));
+        Assert.assertFalse(index.canDispense(pln(110)));
+        Assert.assertFalse(index.reserve(pln(110))
+                .isPresent());
+        Assert.assertEquals(100, index.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test
+    public void shouldPutBackRestoredBanknotes() {
+        index.load(Banknote.PL100, 2);
+        index.load(Banknote.PL10, 1);
+
+        List<Banknote> banknotes = index.reserve(pln(110))
+                .get();
+        index.restore(banknotes);
+
+        Assert.assertEquals(Arrays.asList(Banknote.PL100, Banknote.PL10), banknotes);
+        Assert.assertTrue(index.canDispense(pln(210)));
+        Assert.assertEquals(210, index.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test
+    public void shouldReserveBanknotesFromStock() {
+        index.load(Banknote.PL50, 1);
+        index.load(Banknote.PL20, 3);
+
+        List<Banknote> banknotes = index.reserve(pln(60))
+                .get();
+
+        Assert.assertEquals(Collections.nCopies(3, Banknote.PL20), banknotes);
+        Assert.assertEquals(50, index.largestDispensableAmount(Currency.PL));
+    }
+
+    @Test
+    public void shouldNotReserveUndispensableAmount() {
+        index.load(Banknote.PL50, 1);
+
+        Assert.assertFalse(index.reserve(pln(100))
+                .isPresent());
+        Assert.assertTrue(index.canDispense(pln(50)));
+    }
+
+    private Money pln(int amount) {
+        return Money.builder()
+                .withAmount(amount)
+                .withCurrency(Currency.PL)
+                .build();
+    }
+}
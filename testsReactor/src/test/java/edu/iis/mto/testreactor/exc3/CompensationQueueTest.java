@@ -0,0 +1,299 @@
+package edu.iis.mto.testreactor.exc3;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class CompensationQueueTest {
+
+    private BankService bankService;
+    private List<Runnable> scheduledTasks;
+    private AuthenticationToken authenticationToken;
+
+    @Before
+    public void init() {
+        bankService = Mockito.mock(BankService.class);
+        scheduledTasks = new ArrayList<>();
+        authenticationToken = AuthenticationToken.builder()
+                .withAuthorizationCode(1111)
+                .withUserId("1")
+                .build();
+    }
+
+    @Test
+    public void shouldNotCallAbortBeforeExecutorRunsScheduledTask() {
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .build();
+
+        compensations.abort(authenticationToken);
+
+        Mockito.verify(bankService, Mockito.never())
+                .abort(Mockito.any(AuthenticationToken.class));
+        Assert.assertEquals(1, compensations.pendingCompensations());
+
+        runScheduledTasks();
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+        Assert.assertEquals(0, compensations.pendingCompensations());
+    }
+
+    @Test
+    public void shouldSpillToOverflowInsteadOfAbortingOnCallingThreadWhenQueueIsFull() {
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .withCapacity(1)
+                .build();
+
+        compensations.abort(authenticationToken);
+        compensations.abort(authenticationToken);
+
+        Mockito.verify(bankService, Mockito.never())
+                .abort(Mockito.any(AuthenticationToken.class));
+        Assert.assertEquals(2, compensations.pendingCompensations());
+        Assert.assertEquals(1, compensations.spilledCompensations());
+
+        runScheduledTasks();
+
+        Mockito.verify(bankService, Mockito.times(2))
+                .abort(authenticationToken);
+        Assert.assertEquals(0, compensations.pendingCompensations());
+    }
+
+    @Test
+    public void shouldAttemptAbortOnceOnCallingThreadWhenQueueAndOverflowAreFull() {
+        Mockito.doThrow(new IllegalStateException())
+                .doNothing()
+                .when(bankService)
+                .abort(Mockito.any(AuthenticationToken.class));
+        ScheduledExecutorService scheduler = Mockito.mock(ScheduledExecutorService.class);
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .withScheduler(scheduler)
+                .withCapacity(1)
+                .withOverflowCapacity(1)
+                .build();
+
+        compensations.abort(authenticationToken);
+        compensations.abort(authenticationToken);
+        compensations.abort(authenticationToken);
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+        Mockito.verify(scheduler)
+                .schedule(Mockito.any(Runnable.class), Mockito.eq(100L), Mockito.eq(TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, compensations.spilledCompensations());
+        Assert.assertEquals(1, compensations.rejectedCompensations());
+        Assert.assertEquals(3, compensations.pendingCompensations());
+    }
+
+    @Test
+    public void shouldCapBackoffAtMaxBackoff() {
+        Mockito.doThrow(new IllegalStateException())
+                .when(bankService)
+                .abort(Mockito.any(AuthenticationToken.class));
+        ScheduledExecutorService scheduler = Mockito.mock(ScheduledExecutorService.class);
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(Runnable::run)
+                .withScheduler(scheduler)
+                .withMaxAttempts(100)
+                .withInitialBackoff(Duration.ofMillis(100))
+                .withMaxBackoff(Duration.ofSeconds(1))
+                .build();
+
+        compensations.abort(authenticationToken);
+        for (int retry = 1; retry < 100; retry++) {
+            ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+            ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+            Mockito.verify(scheduler, Mockito.times(retry))
+                    .schedule(task.capture(), delay.capture(), Mockito.eq(TimeUnit.MILLISECONDS));
+            Assert.assertEquals(Math.min(100L << Math.min(retry - 1, 20), 1000L), (long) delay.getValue());
+            task.getValue()
+                    .run();
+        }
+
+        Mockito.verify(bankService, Mockito.times(100))
+                .abort(authenticationToken);
+        Assert.assertEquals(1, compensations.failedCompensations());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMaxBackoffLowerThanInitialBackoff() {
+        CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(Runnable::run)
+                .withInitialBackoff(Duration.ofSeconds(2))
+                .withMaxBackoff(Duration.ofSeconds(1))
+                .build();
+    }
+
+    @Test
+    public void shouldScheduleRetryWithBackoffWithoutHoldingUpOtherAborts() {
+        AuthenticationToken otherToken = AuthenticationToken.builder()
+                .withAuthorizationCode(2222)
+                .withUserId("2")
+                .build();
+        Mockito.doThrow(new IllegalStateException())
+                .when(bankService)
+                .abort(authenticationToken);
+        ScheduledExecutorService scheduler = Mockito.mock(ScheduledExecutorService.class);
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .withScheduler(scheduler)
+                .withInitialBackoff(Duration.ofMillis(100))
+                .build();
+
+        compensations.abort(authenticationToken);
+        compensations.abort(otherToken);
+        runScheduledTasks();
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(otherToken);
+        Mockito.verify(scheduler)
+                .schedule(Mockito.any(Runnable.class), Mockito.eq(100L), Mockito.eq(TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, compensations.pendingCompensations());
+    }
+
+    @Test
+    public void shouldPerformPendingAbortsOfTokenOnCallingThreadWhenCompensatingNow() {
+        AuthenticationToken otherToken = AuthenticationToken.builder()
+                .withAuthorizationCode(2222)
+                .withUserId("2")
+                .build();
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .build();
+
+        compensations.abort(authenticationToken);
+        compensations.abort(otherToken);
+        compensations.compensateNow(authenticationToken);
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+        Mockito.verify(bankService, Mockito.never())
+                .abort(otherToken);
+        Assert.assertEquals(1, compensations.pendingCompensations());
+
+        runScheduledTasks();
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(otherToken);
+    }
+
+    @Test
+    public void shouldPerformPendingAbortsWhenClosed() {
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .build();
+
+        compensations.abort(authenticationToken);
+        compensations.close();
+
+        Mockito.verify(bankService, Mockito.times(1))
+                .abort(authenticationToken);
+        Assert.assertEquals(0, compensations.pendingCompensations());
+    }
+
+    @Test
+    public void shouldRetryAbortUntilItSucceeds() {
+        Mockito.doThrow(new IllegalStateException())
+                .doNothing()
+                .when(bankService)
+                .abort(Mockito.any(AuthenticationToken.class));
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(Runnable::run)
+                .withInitialBackoff(Duration.ZERO)
+                .build();
+
+        compensations.abort(authenticationToken);
+
+        Mockito.verify(bankService, Mockito.times(2))
+                .abort(authenticationToken);
+        Assert.assertEquals(0, compensations.failedCompensations());
+    }
+
+    @Test
+    public void shouldCountFailedCompensationWhenAllAttemptsFail() {
+        Mockito.doThrow(new IllegalStateException())
+                .when(bankService)
+                .abort(Mockito.any(AuthenticationToken.class));
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(Runnable::run)
+                .withMaxAttempts(3)
+                .withInitialBackoff(Duration.ZERO)
+                .build();
+
+        compensations.abort(authenticationToken);
+
+        Mockito.verify(bankService, Mockito.times(3))
+                .abort(authenticationToken);
+        Assert.assertEquals(1, compensations.failedCompensations());
+        Assert.assertEquals(0, compensations.pendingCompensations());
+    }
+
+    @Test
+    public void shouldDrainAtMostBatchSizeCompensationsPerTask() {
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .withBatchSize(2)
+                .build();
+
+        compensations.abort(authenticationToken);
+        compensations.abort(authenticationToken);
+        compensations.abort(authenticationToken);
+        Runnable firstBatch = scheduledTasks.remove(0);
+        firstBatch.run();
+
+        Mockito.verify(bankService, Mockito.times(2))
+                .abort(authenticationToken);
+        Assert.assertEquals(1, compensations.pendingCompensations());
+        Assert.assertEquals(1, scheduledTasks.size());
+    }
+
+    @Test
+    public void shouldReportAgeOfOldestPendingCompensation() {
+        Instant enqueuedAt = Instant.parse("2018-01-01T10:00:00Z");
+        MutableClock clock = new MutableClock(enqueuedAt);
+        CompensationQueue compensations = CompensationQueue.builder()
+                .withBankService(bankService)
+                .withExecutor(scheduledTasks::add)
+                .withClock(clock)
+                .build();
+
+        compensations.abort(authenticationToken);
+        clock.advance(Duration.ofSeconds(30));
+
+        Assert.assertEquals(Duration.ofSeconds(30), compensations.oldestPendingAge());
+    }
+
+    private void runScheduledTasks() {
+        while (!scheduledTasks.isEmpty()) {
+            scheduledTasks.remove(0)
+                    .run();
+        }
+    }
+}